@@ -1,27 +1,27 @@
 package com.technicjelle.bluemapfilteredentities;
 
-import com.flowpowered.math.vector.Vector3d;
-import com.google.gson.reflect.TypeToken;
 import com.technicjelle.BMUtils.BMCopy;
 import com.technicjelle.UpdateChecker;
 import de.bluecolored.bluemap.api.BlueMapAPI;
 import de.bluecolored.bluemap.api.BlueMapMap;
 import de.bluecolored.bluemap.api.BlueMapWorld;
 import de.bluecolored.bluemap.api.markers.MarkerSet;
-import de.bluecolored.bluemap.api.markers.POIMarker;
 import org.bstats.bukkit.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
-import org.bukkit.entity.Entity;
-import org.bukkit.entity.Player;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.spongepowered.configurate.CommentedConfigurationNode;
-import org.spongepowered.configurate.ConfigurationNode;
-import org.spongepowered.configurate.hocon.HoconConfigurationLoader;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -31,19 +31,25 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Stream;
 
 import static com.technicjelle.bluemapfilteredentities.Constants.*;
 
-public final class BlueMapFilteredEntities extends JavaPlugin {
+public final class BlueMapFilteredEntities extends JavaPlugin implements Listener {
 	private UpdateChecker updateChecker;
+	private EntityCollector entityCollector;
+	private volatile EntityRecording.Writer recorder;
 	private final ExecutorService executorService = Executors.newCachedThreadPool();
 
 	private final Map<BlueMapMap, Map<String, FilterSet>> trackingMaps = new HashMap<>();
+	private final List<TrackedWorld> trackedWorlds = new ArrayList<>();
 
 	@Override
 	public void onLoad() {
@@ -52,12 +58,18 @@ public final class BlueMapFilteredEntities extends JavaPlugin {
 		updateChecker = new UpdateChecker("TechnicJelle", "BlueMapFilteredEntities", getDescription().getVersion());
 		updateChecker.checkAsync();
 
+		entityCollector = EntityCollector.create(this);
+
 		BlueMapAPI.onEnable(onEnableListenerConfig);
 		BlueMapAPI.onDisable(onDisableListener);
 	}
 
 	@Override
 	public void onEnable() {
+		getServer().getPluginManager().registerEvents(this, this);
+		if (entityCollector instanceof Listener collectorListener) {
+			getServer().getPluginManager().registerEvents(collectorListener, this);
+		}
 		BlueMapAPI.onEnable(onEnableListenerMaps);
 	}
 
@@ -112,6 +124,7 @@ public final class BlueMapFilteredEntities extends JavaPlugin {
 		if (files == null) return;
 
 		trackingMaps.clear();
+		trackedWorlds.clear();
 		for (File file : files) {
 			if (!file.getName().endsWith(CONF_EXT)) continue;
 
@@ -126,13 +139,9 @@ public final class BlueMapFilteredEntities extends JavaPlugin {
 
 			getLogger().info("Loading config for map: " + map.getId());
 
-			HoconConfigurationLoader loader = HoconConfigurationLoader.builder()
-					.defaultOptions(options -> options.implicitInitialization(false))
-					.path(file.toPath()).build();
-
 			CommentedConfigurationNode root;
 			try {
-				root = loader.load();
+				root = ConfigLoader.load(file.toPath());
 			} catch (Exception e) {
 				getLogger().log(Level.SEVERE, "Failed to load config for map: " + map.getId(), e);
 				continue;
@@ -143,76 +152,135 @@ public final class BlueMapFilteredEntities extends JavaPlugin {
 			}
 
 			try {
-				ConfigurationNode configFilterSetsNode = root.node(NODE_FILTER_SETS);
-				if (configFilterSetsNode.virtual()) throw new Exception("filter-sets property is required");
-				Type filterSetType = new TypeToken<Map<String, FilterSet>>() {}.getType();
-				Object configFilterSetsMaybe = configFilterSetsNode.get(filterSetType);
-				Map<String, FilterSet> configFilterSets = (Map<String, FilterSet>) configFilterSetsMaybe;
-				if (configFilterSets == null) throw new Exception("filter-sets property was null");
-
-				Map<String, FilterSet> validFilterSets = new HashMap<>();
-				for (var entry : configFilterSets.entrySet()) {
-					String filterSetId = entry.getKey();
-					FilterSet filterSet = entry.getValue();
-					getLogger().info("Loading filter set: " + filterSetId);
-					if (filterSet == null) {
-						getLogger().log(Level.SEVERE, "Filter Set '" + filterSetId + "' is null");
-						continue;
-					}
-					boolean valid = filterSet.checkValidAndInit(getLogger(), api);
-					if (valid) {
-						validFilterSets.put(filterSetId, filterSet);
-					}
-					if (!validFilterSets.isEmpty())
-						trackingMaps.put(map, validFilterSets);
-				}
+				Map<String, FilterSet> validFilterSets = ConfigLoader.loadFilterSets(root, getLogger(), api.getWebApp().getWebRoot());
+				if (!validFilterSets.isEmpty())
+					trackingMaps.put(map, validFilterSets);
 			} catch (Exception e) {
 				getLogger().log(Level.SEVERE, "Failed to load filters for map: " + map.getId(), e);
 			}
 		}
+
+		// Maps of the same world share their entities and filter evaluations
+		Map<BlueMapWorld, Map<BlueMapMap, Map<String, FilterSet>>> mapsPerWorld = new HashMap<>();
+		for (var entry : trackingMaps.entrySet()) {
+			mapsPerWorld.computeIfAbsent(entry.getKey().getWorld(), w -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+		}
+		for (var entry : mapsPerWorld.entrySet()) {
+			TrackedWorld trackedWorld = new TrackedWorld(entry.getKey(), entry.getValue());
+			getLogger().info("Tracking " + entry.getValue().size() + " map(s) of world " + entry.getKey().getId() +
+					", with " + trackedWorld.getClassifier().getUniqueFilterCount() + " unique filter(s)");
+			trackedWorlds.add(trackedWorld);
+		}
 	};
 
 	private final Consumer<BlueMapAPI> onEnableListenerMaps = api -> {
 		updateChecker.logUpdateMessage(getLogger());
 
-		Bukkit.getScheduler().scheduleSyncRepeatingTask(this, () -> processMaps(api), 0, 20 * 10);
+		entityCollector.scheduleRepeating(() -> processMaps(api), 20 * 10);
 	};
 
 	private void processMaps(BlueMapAPI api) {
-		if (trackingMaps.isEmpty()) return;
+		if (trackedWorlds.isEmpty()) return;
 		long millisAtStart = System.currentTimeMillis();
+		// Only the processing itself is timed, as collecting can take several ticks on Folia, where every region is waited for
+		AtomicLong processingMillis = new AtomicLong();
+		AtomicLong collectingMillis = new AtomicLong();
+
+		// Put the filter conditions that recently rejected the most entities for their cost first
+		for (Map<String, FilterSet> filterSetMap : trackingMaps.values()) {
+			for (FilterSet filterSet : filterSetMap.values()) {
+				filterSet.reorderPredicates();
+			}
+		}
 
-		CompletableFuture<Void>[] futures = new CompletableFuture[trackingMaps.size()];
-		int i = 0;
-		for (var entry : trackingMaps.entrySet()) {
-			BlueMapMap map = entry.getKey();
-			Map<String, FilterSet> filterSetMap = entry.getValue();
+		// Read once, so every world of this update agrees on whether it is recorded, and with which fields it was collected
+		@Nullable EntityRecording.Writer writer = recorder;
 
-			if (filterSetMap.isEmpty()) continue;
+		List<CompletableFuture<Void>> futures = new ArrayList<>(trackedWorlds.size());
+		for (TrackedWorld trackedWorld : trackedWorlds) {
+			World world = resolveWorld(api, trackedWorld);
+			if (world == null) continue;
 
-			World world = findBukkitWorldFromBlueMapWorld(api, map.getWorld());
-			if (world == null) {
-				getLogger().warning("Failed to get Bukkit world for BlueMapMap: " + map.getId());
+			if (!trackedWorld.tryStartUpdate()) {
+				getLogger().warning("Previous entity marker update for world " + world.getName() + " is still running, skipping this one");
 				continue;
 			}
-			List<Entity> entities = world.getEntities();
 
-			CompletableFuture<Void> future = CompletableFuture.runAsync(() -> processEntities(map, filterSetMap, entities), executorService);
-			futures[i] = future;
-			i++;
+			CompletableFuture<List<EntitySnapshot>> collected;
+			try {
+				// Recordings need every field, so they can be replayed against other filters
+				EntitySnapshot.Fields fields = writer != null ? EntitySnapshot.Fields.ALL : trackedWorld.getRequiredFields();
+				collected = entityCollector.collect(world, fields);
+			} catch (RuntimeException e) {
+				collected = CompletableFuture.failedFuture(e);
+			}
+
+			CompletableFuture<Void> future = collected
+					.thenAcceptAsync(entities -> {
+						long millisAtCollected = System.currentTimeMillis();
+						collectingMillis.accumulateAndGet(millisAtCollected - millisAtStart, Math::max);
+
+						// One pass over the entities for all maps of this world
+						Map<FilterSet, List<FilterClassifier.Match>> classification = trackedWorld.getClassifier().classify(entities);
+						for (var entry : trackedWorld.getBindings().entrySet()) {
+							BlueMapMap map = entry.getKey();
+							List<MarkerSetBinding> bindings = entry.getValue();
+							EntityMarkers.processEntities(map.getMarkerSets(), bindings, classification, trackedWorld.getMarkerIds());
+						}
+						trackedWorld.getMarkerIds().nextCycle();
+						processingMillis.addAndGet(System.currentTimeMillis() - millisAtCollected);
+
+						if (writer != null) recordFrame(writer, trackedWorld, world, entities);
+					}, executorService)
+					.whenComplete((ignored, e) -> trackedWorld.finishUpdate())
+					.exceptionally(e -> {
+						Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+						if (cause instanceof TimeoutException) {
+							// Not all entities could be collected in time, so the previous markers were kept
+							getLogger().warning(cause.getMessage());
+						} else {
+							getLogger().log(Level.SEVERE, "Failed to process entities for world: " + world.getName(), e);
+						}
+						return null;
+					});
+			futures.add(future);
 		}
 
-		CompletableFuture.allOf(futures)
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
 				.thenRun(() -> {
-					long diff = System.currentTimeMillis() - millisAtStart;
+					long diff = processingMillis.get();
 					if (diff > 15) {
-						getLogger().warning("Took " + (System.currentTimeMillis() - millisAtStart) + "ms to add entity markers for all maps!\n" +
+						getLogger().warning("Took " + diff + "ms to add entity markers for all maps, after " + collectingMillis.get() + "ms of collecting the entities!\n" +
 								"This is fine for the first run, but if it more often, you might want to reduce the number of entities or filters.");
 					}
 				})
 		;
 	}
 
+	/**
+	 * Only looks the world up again after a world was loaded or unloaded
+	 */
+	private @Nullable World resolveWorld(BlueMapAPI api, TrackedWorld trackedWorld) {
+		if (trackedWorld.isWorldResolved()) return trackedWorld.getWorld();
+
+		World world = findBukkitWorldFromBlueMapWorld(api, trackedWorld.getBlueMapWorld());
+		if (world == null) {
+			getLogger().warning("Failed to get Bukkit world for BlueMapWorld: " + trackedWorld.getBlueMapWorld().getId());
+		}
+		trackedWorld.setWorld(world);
+		return world;
+	}
+
+	@EventHandler
+	public void onWorldLoad(WorldLoadEvent event) {
+		trackedWorlds.forEach(TrackedWorld::invalidateWorld);
+	}
+
+	@EventHandler
+	public void onWorldUnload(WorldUnloadEvent event) {
+		trackedWorlds.forEach(TrackedWorld::invalidateWorld);
+	}
+
 	private static World findBukkitWorldFromBlueMapWorld(BlueMapAPI api, BlueMapWorld targetBMWorld) {
 		for (World world : Bukkit.getWorlds()) {
 			BlueMapWorld tryBMWorld = api.getWorld(world).orElse(null);
@@ -223,78 +291,114 @@ public final class BlueMapFilteredEntities extends JavaPlugin {
 		return null;
 	}
 
-	private void processEntities(BlueMapMap map, Map<String, FilterSet> filterSetMap, List<Entity> worldEntities) {
-		for (var entry : filterSetMap.entrySet()) {
-			String filterSetId = entry.getKey();
-			FilterSet filterSet = entry.getValue();
-			assert filterSet.getFilters() != null;
-
-			Map<Entity, Filter> entityMatchedByFilterMap = new HashMap<>();
-			List<Entity> filteredEntities = new ArrayList<>();
-			for (Entity entity : worldEntities) {
-				if (entity instanceof Player) continue;
-				for (Filter filter : filterSet.getFilters()) {
-					if (filter.matches(entity)) {
-						entityMatchedByFilterMap.put(entity, filter);
-						filteredEntities.add(entity);
-						break;
-					}
-				}
+	/**
+	 * @param writer The recording that was active when the entities were collected, as only then they have all their fields
+	 */
+	private void recordFrame(EntityRecording.Writer writer, TrackedWorld trackedWorld, World world, List<EntitySnapshot> entities) {
+		List<String> mapIds = new ArrayList<>();
+		Map<String, Long> markerSetDigests = new HashMap<>();
+		for (var entry : trackedWorld.getBindings().entrySet()) {
+			BlueMapMap map = entry.getKey();
+			mapIds.add(map.getId());
+			for (MarkerSetBinding binding : entry.getValue()) {
+				MarkerSet markerSet = map.getMarkerSets().get(binding.getMarkerSetId());
+				if (markerSet != null) markerSetDigests.put(binding.getMarkerSetId(), EntityMarkers.digest(markerSet));
 			}
+		}
 
-			String key = map.getId() + "_" + filterSetId + "_entities";
-			MarkerSet markerSet = map.getMarkerSets().computeIfAbsent(key, id -> filterSet.createMarkerset());
-
-			markerSet.getMarkers().clear();
-
-			for (Entity entity : filteredEntities) {
-				Filter matchedFilter = entityMatchedByFilterMap.get(entity);
-
-				//TODO: Add special data for Item Frames
-				//TODO: Add special data for Armor Stands
-
-				String entityInfoTemplate = matchedFilter.getPopupInfoWithTemplate();
-				assert entityInfoTemplate != null;
-				String entityInfo = entityInfoTemplate.
-						replace(ENTITY_PROPERTY_TYPE, entity.getType().name()).
-						replace(ENTITY_PROPERTY_NAME, entity.getName()).
-						replace(ENTITY_PROPERTY_UUID, entity.getUniqueId().toString()).
-						replace(ENTITY_PROPERTY_SPAWN_REASON, entity.getEntitySpawnReason().name()).
-						replace(ENTITY_PROPERTY_CUSTOM_NAME, getNullableString(getCustomName(entity))).
-						replace(ENTITY_PROPERTY_X, String.valueOf(entity.getLocation().getBlockX())).
-						replace(ENTITY_PROPERTY_Y, String.valueOf(entity.getLocation().getBlockY())).
-						replace(ENTITY_PROPERTY_Z, String.valueOf(entity.getLocation().getBlockZ())).
-						replace(ENTITY_PROPERTY_WORLD, entity.getWorld().getName()).
-						replace(ENTITY_PROPERTY_SCOREBOARD_TAGS, collectionToString(entity.getScoreboardTags()));
-
-				double yOffset = entity.getHeight() / 2.0;
-				Vector3d position = new Vector3d(entity.getLocation().getX(), entity.getLocation().getY() + yOffset, entity.getLocation().getZ());
-				POIMarker marker = POIMarker.builder()
-						.label(entityInfo.split("\n")[0]) // First line of entityInfo
-						.detail(entityInfo.replace("\n", "<br>"))
-						.styleClasses("bmfe-entity")
-						.position(position)
-						.build();
-
-				String icon = matchedFilter.getIcon();
-				if (icon != null) {
-					marker.setIcon("assets/bmfe-icons/" + icon, matchedFilter.getAnchor());
-				}
+		try {
+			writer.write(new EntityRecording.Frame(System.currentTimeMillis(), world.getName(), mapIds, entities, markerSetDigests));
+		} catch (IOException e) {
+			getLogger().log(Level.SEVERE, "Failed to write entity recording, stopping it", e);
+			stopRecording();
+		}
+	}
+
+	private synchronized void stopRecording() {
+		EntityRecording.Writer writer = recorder;
+		if (writer == null) return;
+		recorder = null;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			getLogger().log(Level.SEVERE, "Failed to close entity recording", e);
+		}
+	}
 
-				Double maxDistance = matchedFilter.getMaxDistance();
-				if (maxDistance != null) {
-					marker.setMaxDistance(maxDistance);
+	@Override
+	public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+		if (args.length == 0) return false;
+		if (args[0].equalsIgnoreCase("record")) return onRecordCommand(sender, args);
+		if (!args[0].equalsIgnoreCase("stats")) return false;
+
+		if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+			for (Map<String, FilterSet> filterSetMap : trackingMaps.values()) {
+				for (FilterSet filterSet : filterSetMap.values()) {
+					filterSet.resetPredicateStats();
 				}
+			}
+			sender.sendMessage("Filter stats have been reset");
+			return true;
+		}
 
-				markerSet.put("bmfe." + entity.getUniqueId(), marker);
+		List<String> lines = new ArrayList<>();
+		lines.add("Rejected/evaluated per filter condition, for 1 in " + FilterPredicate.SAMPLE_RATE + " entities, halved every update:");
+		for (var mapEntry : trackingMaps.entrySet()) {
+			lines.add("Map " + mapEntry.getKey().getId() + ":");
+			for (var filterSetEntry : mapEntry.getValue().entrySet()) {
+				lines.add("  Filter Set " + filterSetEntry.getKey() + ":");
+				filterSetEntry.getValue().appendPredicateStats(lines, "    ");
 			}
 		}
+		if (trackingMaps.isEmpty()) lines.add("No maps are being tracked");
+		sender.sendMessage(lines.toArray(new String[0]));
+		return true;
 	}
 
-	private final Consumer<BlueMapAPI> onDisableListener = api -> Bukkit.getScheduler().cancelTasks(this);
+	private synchronized boolean onRecordCommand(CommandSender sender, String[] args) {
+		if (args.length < 2) return false;
+
+		if (args[1].equalsIgnoreCase("start")) {
+			if (recorder != null) {
+				sender.sendMessage("Already recording");
+				return true;
+			}
+			Path recordingsFolder = getDataFolder().toPath().resolve("recordings");
+			Path recordingPath = recordingsFolder.resolve("recording-" + System.currentTimeMillis() + EntityRecording.FILE_EXT);
+			try {
+				Files.createDirectories(recordingsFolder);
+				recorder = new EntityRecording.Writer(recordingPath);
+			} catch (IOException e) {
+				getLogger().log(Level.SEVERE, "Failed to start entity recording", e);
+				sender.sendMessage("Failed to start recording, see the console for details");
+				return true;
+			}
+			sender.sendMessage("Recording entities to " + recordingPath);
+			return true;
+		}
+
+		if (args[1].equalsIgnoreCase("stop")) {
+			EntityRecording.Writer writer = recorder;
+			if (writer == null) {
+				sender.sendMessage("Not recording");
+				return true;
+			}
+			stopRecording();
+			sender.sendMessage("Stopped recording after " + writer.getFrameCount() + " frames");
+			return true;
+		}
+
+		return false;
+	}
+
+	private final Consumer<BlueMapAPI> onDisableListener = api -> {
+		entityCollector.cancelAll();
+		stopRecording();
+	};
 
 	@Override
 	public void onDisable() {
+		stopRecording();
 		BlueMapAPI.unregisterListener(onEnableListenerConfig);
 		BlueMapAPI.unregisterListener(onEnableListenerMaps);
 		BlueMapAPI.unregisterListener(onDisableListener);
@@ -0,0 +1,45 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Collects entities on the main server thread, for normal single-threaded servers.
+ */
+public class BukkitEntityCollector implements EntityCollector {
+	private final @NotNull Plugin plugin;
+
+	public BukkitEntityCollector(@NotNull Plugin plugin) {
+		this.plugin = plugin;
+	}
+
+	@Override
+	public void scheduleRepeating(@NotNull Runnable task, long periodTicks) {
+		Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, task, 0, periodTicks);
+	}
+
+	@Override
+	public void cancelAll() {
+		Bukkit.getScheduler().cancelTasks(plugin);
+	}
+
+	@Override
+	public @NotNull CompletableFuture<List<EntitySnapshot>> collect(@NotNull World world, EntitySnapshot.@NotNull Fields fields) {
+		List<Entity> entities = world.getEntities();
+		String worldName = world.getName();
+		List<EntitySnapshot> snapshots = new ArrayList<>(entities.size());
+		for (Entity entity : entities) {
+			if (entity instanceof Player) continue;
+			snapshots.add(EntitySnapshot.of(entity, worldName, fields));
+		}
+		return CompletableFuture.completedFuture(snapshots);
+	}
+}
@@ -0,0 +1,61 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import com.google.gson.reflect.TypeToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.spongepowered.configurate.CommentedConfigurationNode;
+import org.spongepowered.configurate.ConfigurateException;
+import org.spongepowered.configurate.ConfigurationNode;
+import org.spongepowered.configurate.hocon.HoconConfigurationLoader;
+
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.technicjelle.bluemapfilteredentities.Constants.NODE_FILTER_SETS;
+
+/**
+ * Loads the per-map config files. Does not depend on a running server, so it can also be used by the {@link ReplayHarness}.
+ */
+public class ConfigLoader {
+	public static @NotNull CommentedConfigurationNode load(@NotNull Path file) throws ConfigurateException {
+		HoconConfigurationLoader loader = HoconConfigurationLoader.builder()
+				.defaultOptions(options -> options.implicitInitialization(false))
+				.path(file).build();
+
+		return loader.load();
+	}
+
+	/**
+	 * @param webRoot The root of the BlueMap webapp, to check if the icons exist. If null, the icons are not checked.
+	 * @return Only the filter sets that are valid
+	 */
+	@SuppressWarnings("unchecked")
+	public static @NotNull Map<String, FilterSet> loadFilterSets(@NotNull ConfigurationNode root, @NotNull Logger logger, @Nullable Path webRoot) throws Exception {
+		ConfigurationNode configFilterSetsNode = root.node(NODE_FILTER_SETS);
+		if (configFilterSetsNode.virtual()) throw new Exception("filter-sets property is required");
+		Type filterSetType = new TypeToken<Map<String, FilterSet>>() {}.getType();
+		Object configFilterSetsMaybe = configFilterSetsNode.get(filterSetType);
+		Map<String, FilterSet> configFilterSets = (Map<String, FilterSet>) configFilterSetsMaybe;
+		if (configFilterSets == null) throw new Exception("filter-sets property was null");
+
+		Map<String, FilterSet> validFilterSets = new HashMap<>();
+		for (var entry : configFilterSets.entrySet()) {
+			String filterSetId = entry.getKey();
+			FilterSet filterSet = entry.getValue();
+			logger.info("Loading filter set: " + filterSetId);
+			if (filterSet == null) {
+				logger.log(Level.SEVERE, "Filter Set '" + filterSetId + "' is null");
+				continue;
+			}
+			boolean valid = filterSet.checkValidAndInit(logger, webRoot);
+			if (valid) {
+				validFilterSets.put(filterSetId, filterSet);
+			}
+		}
+		return validFilterSets;
+	}
+}
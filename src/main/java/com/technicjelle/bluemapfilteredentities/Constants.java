@@ -24,6 +24,13 @@ public class Constants {
 	public static final String ENTITY_PROPERTY_WORLD = "{world}";
 	public static final String ENTITY_PROPERTY_SCOREBOARD_TAGS = "{scoreboard-tags}";
 
+	// Rough relative costs of the different filter conditions, used for their initial evaluation order
+	public static final int COST_CHEAP = 1;
+	public static final int COST_BOUNDS = 2;
+	public static final int COST_SCOREBOARD_TAGS = 4;
+	public static final int COST_REGEX = 8;
+	public static final int COST_EXCLUDE = 16;
+
 	@NotNull
 	public static String getNullableString(String toNotNull) {
 		return toNotNull == null ? "null" : toNotNull;
@@ -0,0 +1,42 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.technicjelle.bluemapfilteredentities.Constants.tryGetClass;
+
+/**
+ * Takes care of scheduling the marker updates and collecting snapshots of the entities in a world,
+ * on whichever thread(s) the server allows that to happen.
+ */
+public interface EntityCollector {
+	/**
+	 * Picks the right collector for the server this plugin is running on.
+	 */
+	static @NotNull EntityCollector create(@NotNull Plugin plugin) {
+		if (tryGetClass("io.papermc.paper.threadedregions.RegionizedServer") != null) {
+			return new FoliaEntityCollector(plugin);
+		}
+		return new BukkitEntityCollector(plugin);
+	}
+
+	/**
+	 * Runs the task every {@code periodTicks} ticks, on a thread from which {@link #collect(World)} may be called.
+	 */
+	void scheduleRepeating(@NotNull Runnable task, long periodTicks);
+
+	/**
+	 * Cancels all tasks that were scheduled by this collector.
+	 */
+	void cancelAll();
+
+	/**
+	 * @param fields Which of the optional fields to fill in
+	 * @return A future that completes with snapshots of all (non-player) entities in the world
+	 */
+	@NotNull CompletableFuture<List<EntitySnapshot>> collect(@NotNull World world, EntitySnapshot.@NotNull Fields fields);
+}
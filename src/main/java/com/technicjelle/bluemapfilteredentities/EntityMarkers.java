@@ -0,0 +1,102 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import com.flowpowered.math.vector.Vector3d;
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+import de.bluecolored.bluemap.api.markers.POIMarker;
+import org.bukkit.Location;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import static com.technicjelle.bluemapfilteredentities.Constants.*;
+
+/**
+ * Turns entity snapshots into markers. Only works on the marker sets themselves, so it does not need a running BlueMap.
+ */
+public class EntityMarkers {
+	public static @NotNull String markerSetId(@NotNull String mapId, @NotNull String filterSetId) {
+		return mapId + "_" + filterSetId + "_entities";
+	}
+
+	/**
+	 * Replaces the markers in the marker sets of the map with the entities that were matched by each of its filter sets.
+	 *
+	 * @param markerSets     The marker sets of the map, in which missing ones are created
+	 * @param bindings       The filter sets of the map
+	 * @param classification The result of a {@link FilterClassifier} that includes all of this map's filter sets
+	 * @param markerIds      The marker ids of the entities, which should be shared by all maps of the world
+	 */
+	public static void processEntities(@NotNull Map<String, MarkerSet> markerSets, @NotNull List<MarkerSetBinding> bindings, @NotNull Map<FilterSet, List<FilterClassifier.Match>> classification, @NotNull MarkerIdCache markerIds) {
+		for (MarkerSetBinding binding : bindings) {
+			List<FilterClassifier.Match> matches = classification.get(binding.getFilterSet());
+			assert matches != null;
+
+			MarkerSet markerSet = binding.resolve(markerSets);
+
+			markerSet.getMarkers().clear();
+
+			for (FilterClassifier.Match match : matches) {
+				EntitySnapshot entity = match.entity();
+				Filter matchedFilter = match.filter();
+
+				//TODO: Add special data for Item Frames
+				//TODO: Add special data for Armor Stands
+
+				String entityInfoTemplate = matchedFilter.getPopupInfoWithTemplate();
+				assert entityInfoTemplate != null;
+				String entityInfo = entityInfoTemplate.
+						replace(ENTITY_PROPERTY_TYPE, entity.type().name()).
+						replace(ENTITY_PROPERTY_NAME, entity.name()).
+						replace(ENTITY_PROPERTY_UUID, entity.uuid().toString()).
+						replace(ENTITY_PROPERTY_SPAWN_REASON, entity.spawnReason().name()).
+						replace(ENTITY_PROPERTY_CUSTOM_NAME, getNullableString(entity.customName())).
+						replace(ENTITY_PROPERTY_X, String.valueOf(Location.locToBlock(entity.x()))).
+						replace(ENTITY_PROPERTY_Y, String.valueOf(Location.locToBlock(entity.y()))).
+						replace(ENTITY_PROPERTY_Z, String.valueOf(Location.locToBlock(entity.z()))).
+						replace(ENTITY_PROPERTY_WORLD, entity.worldName()).
+						replace(ENTITY_PROPERTY_SCOREBOARD_TAGS, collectionToString(entity.scoreboardTags()));
+
+				double yOffset = entity.height() / 2.0;
+				Vector3d position = new Vector3d(entity.x(), entity.y() + yOffset, entity.z());
+				POIMarker marker = POIMarker.builder()
+						.label(entityInfo.split("\n")[0]) // First line of entityInfo
+						.detail(entityInfo.replace("\n", "<br>"))
+						.styleClasses("bmfe-entity")
+						.position(position)
+						.build();
+
+				String icon = matchedFilter.getIcon();
+				if (icon != null) {
+					marker.setIcon("assets/bmfe-icons/" + icon, matchedFilter.getAnchor());
+				}
+
+				Double maxDistance = matchedFilter.getMaxDistance();
+				if (maxDistance != null) {
+					marker.setMaxDistance(maxDistance);
+				}
+
+				markerSet.put(markerIds.get(entity.uuid()), marker);
+			}
+		}
+	}
+
+	/**
+	 * @return A hash of all the markers in the marker set, independent of their order, to cheaply check if two runs produced the same output
+	 */
+	public static long digest(@NotNull MarkerSet markerSet) {
+		long digest = 17;
+		for (var entry : new TreeMap<>(markerSet.getMarkers()).entrySet()) {
+			Marker marker = entry.getValue();
+			int markerHash = Objects.hash(entry.getKey(), marker.getLabel(), marker.getPosition());
+			if (marker instanceof POIMarker poiMarker) {
+				markerHash = 31 * markerHash + Objects.hash(poiMarker.getDetail(), poiMarker.getIcon(), poiMarker.getAnchor(), poiMarker.getMaxDistance());
+			}
+			digest = digest * 1_000_003 + markerHash;
+		}
+		return digest;
+	}
+}
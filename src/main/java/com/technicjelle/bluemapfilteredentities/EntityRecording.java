@@ -0,0 +1,192 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.technicjelle.bluemapfilteredentities.Constants.tryGetClass;
+
+/**
+ * A gzipped binary file with the entity snapshots of every world, for every cycle that was recorded,
+ * together with a digest of the markers that the plugin made from them for each of that world's maps.<br>
+ * These can be replayed offline with the {@link ReplayHarness}.
+ */
+public class EntityRecording {
+	public static final String FILE_EXT = ".bmfer";
+
+	private static final int MAGIC = 0x424D4645; // "BMFE"
+	private static final short VERSION = 2;
+
+	/**
+	 * @param timestamp        When the entities were collected, in milliseconds since the epoch
+	 * @param mapIds           The maps of the world that these entities were processed for
+	 * @param markerSetDigests {@link EntityMarkers#digest} of each of those maps' marker sets, after processing these entities
+	 */
+	public record Frame(
+			long timestamp,
+			@NotNull String worldName,
+			@NotNull List<String> mapIds,
+			@NotNull List<EntitySnapshot> entities,
+			@NotNull Map<String, Long> markerSetDigests
+	) {
+	}
+
+	public static class Writer implements Closeable {
+		private final DataOutputStream out;
+		private int frameCount = 0;
+		private boolean closed = false;
+
+		public Writer(@NotNull Path file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file))));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+		}
+
+		/**
+		 * Does nothing if the writer was already closed, as a frame may still be in flight when the recording is stopped
+		 */
+		public synchronized void write(@NotNull Frame frame) throws IOException {
+			if (closed) return;
+			out.writeBoolean(true);
+			out.writeLong(frame.timestamp());
+			out.writeUTF(frame.worldName());
+			out.writeInt(frame.mapIds().size());
+			for (String mapId : frame.mapIds()) {
+				out.writeUTF(mapId);
+			}
+
+			out.writeInt(frame.entities().size());
+			for (EntitySnapshot entity : frame.entities()) {
+				writeSnapshot(entity);
+			}
+
+			out.writeInt(frame.markerSetDigests().size());
+			for (var entry : frame.markerSetDigests().entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			frameCount++;
+		}
+
+		private void writeSnapshot(EntitySnapshot entity) throws IOException {
+			out.writeUTF(entity.type().name());
+			// The implementation classes don't exist outside the server, so store the API class instead
+			Class<?> apiClass = entity.type().getEntityClass();
+			out.writeUTF(apiClass != null ? apiClass.getName() : entity.entityClass().getName());
+			out.writeUTF(entity.name());
+			out.writeBoolean(entity.customName() != null);
+			if (entity.customName() != null) out.writeUTF(entity.customName());
+			out.writeLong(entity.uuid().getMostSignificantBits());
+			out.writeLong(entity.uuid().getLeastSignificantBits());
+			out.writeUTF(entity.spawnReason().name());
+			out.writeDouble(entity.x());
+			out.writeDouble(entity.y());
+			out.writeDouble(entity.z());
+			out.writeDouble(entity.height());
+			out.writeInt(entity.scoreboardTags().size());
+			for (String tag : entity.scoreboardTags()) {
+				out.writeUTF(tag);
+			}
+		}
+
+		public synchronized int getFrameCount() {
+			return frameCount;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			out.writeBoolean(false);
+			out.close();
+		}
+	}
+
+	/**
+	 * If the recording was never closed properly (for example because the server crashed),
+	 * all the frames up to where it was cut off are returned.
+	 */
+	public static @NotNull List<Frame> read(@NotNull Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+			if (in.readInt() != MAGIC) throw new IOException("Not an entity recording: " + file);
+			short version = in.readShort();
+			if (version != VERSION) throw new IOException("Unsupported entity recording version: " + version);
+
+			List<Frame> frames = new ArrayList<>();
+			try {
+				readFrames(in, frames);
+			} catch (EOFException e) {
+				// Recording was cut off, so the last frame is incomplete and is left out
+			}
+			return frames;
+		}
+	}
+
+	private static void readFrames(DataInputStream in, List<Frame> frames) throws IOException {
+		while (in.readBoolean()) {
+			long timestamp = in.readLong();
+			String worldName = in.readUTF();
+			int mapCount = in.readInt();
+			List<String> mapIds = new ArrayList<>(mapCount);
+			for (int i = 0; i < mapCount; i++) {
+				mapIds.add(in.readUTF());
+			}
+
+			int entityCount = in.readInt();
+			List<EntitySnapshot> entities = new ArrayList<>(entityCount);
+			for (int i = 0; i < entityCount; i++) {
+				entities.add(readSnapshot(in, worldName));
+			}
+
+			int digestCount = in.readInt();
+			Map<String, Long> markerSetDigests = new LinkedHashMap<>();
+			for (int i = 0; i < digestCount; i++) {
+				markerSetDigests.put(in.readUTF(), in.readLong());
+			}
+
+			frames.add(new Frame(timestamp, worldName, mapIds, entities, markerSetDigests));
+		}
+	}
+
+	private static EntitySnapshot readSnapshot(DataInputStream in, String worldName) throws IOException {
+		EntityType type = EntityType.valueOf(in.readUTF());
+		@Nullable Class<?> entityClass = tryGetClass(in.readUTF());
+		String name = in.readUTF();
+		String customName = in.readBoolean() ? in.readUTF() : null;
+		UUID uuid = new UUID(in.readLong(), in.readLong());
+		CreatureSpawnEvent.SpawnReason spawnReason = CreatureSpawnEvent.SpawnReason.valueOf(in.readUTF());
+		double x = in.readDouble();
+		double y = in.readDouble();
+		double z = in.readDouble();
+		double height = in.readDouble();
+		int tagCount = in.readInt();
+		Set<String> scoreboardTags = new HashSet<>(tagCount);
+		for (int i = 0; i < tagCount; i++) {
+			scoreboardTags.add(in.readUTF());
+		}
+
+		return new EntitySnapshot(type, entityClass != null ? entityClass : Entity.class, name, customName, uuid, spawnReason,
+				x, y, z, height, worldName, Set.copyOf(scoreboardTags));
+	}
+}
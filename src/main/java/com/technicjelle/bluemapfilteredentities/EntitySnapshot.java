@@ -0,0 +1,70 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.UUID;
+
+import static com.technicjelle.bluemapfilteredentities.Constants.getCustomName;
+
+/**
+ * An immutable copy of the entity data that the filters and markers need.<br>
+ * Must be created on the thread that owns the entity, but can be read from anywhere afterwards.
+ * <p>
+ * The name, custom name and scoreboard tags are more expensive to get, so they are only filled in when
+ * a filter or popup template needs them (see {@link Fields}). Otherwise, they are empty.
+ *
+ * @param entityClass The class of the entity, used for the instance-of filter
+ */
+public record EntitySnapshot(
+		@NotNull EntityType type,
+		@NotNull Class<?> entityClass,
+		@NotNull String name,
+		@Nullable String customName,
+		@NotNull UUID uuid,
+		@NotNull CreatureSpawnEvent.SpawnReason spawnReason,
+		double x,
+		double y,
+		double z,
+		double height,
+		@NotNull String worldName,
+		@NotNull Set<String> scoreboardTags
+) {
+	/**
+	 * Which of the optional fields to fill in
+	 */
+	public record Fields(boolean name, boolean customName, boolean scoreboardTags) {
+		public static final Fields NONE = new Fields(false, false, false);
+		public static final Fields ALL = new Fields(true, true, true);
+
+		public @NotNull Fields union(@NotNull Fields other) {
+			return new Fields(name || other.name, customName || other.customName, scoreboardTags || other.scoreboardTags);
+		}
+	}
+
+	/**
+	 * @param worldName The name of the world the entity is in, passed in so it doesn't have to be looked up for every entity
+	 */
+	public static @NotNull EntitySnapshot of(@NotNull Entity entity, @NotNull String worldName, @NotNull Fields fields) {
+		Location location = entity.getLocation();
+		return new EntitySnapshot(
+				entity.getType(),
+				entity.getClass(),
+				fields.name() ? entity.getName() : "",
+				fields.customName() ? getCustomName(entity) : null,
+				entity.getUniqueId(),
+				entity.getEntitySpawnReason(),
+				location.getX(),
+				location.getY(),
+				location.getZ(),
+				entity.getHeight(),
+				worldName,
+				fields.scoreboardTags() ? Set.copyOf(entity.getScoreboardTags()) : Set.of()
+		);
+	}
+}
@@ -1,7 +1,6 @@
 package com.technicjelle.bluemapfilteredentities;
 
 import com.flowpowered.math.vector.Vector2i;
-import de.bluecolored.bluemap.api.BlueMapAPI;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
 import org.bukkit.event.entity.CreatureSpawnEvent;
@@ -11,8 +10,12 @@ import org.spongepowered.configurate.objectmapping.ConfigSerializable;
 import org.spongepowered.configurate.objectmapping.meta.Comment;
 
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -89,7 +92,49 @@ public class Filter {
 	@Nullable
 	private transient Class<?> entityInstanceOf;
 
-	public boolean checkValidAndInit(Logger logger, BlueMapAPI bmApi) {
+	private transient volatile FilterPredicate[] predicates = new FilterPredicate[0];
+
+	@Nullable
+	private transient MatchKey matchKey;
+
+	private transient EntitySnapshot.@NotNull Fields conditionFields = EntitySnapshot.Fields.ALL;
+
+	private transient EntitySnapshot.@NotNull Fields requiredFields = EntitySnapshot.Fields.ALL;
+
+	/**
+	 * The identical filter that the {@link FilterClassifier} evaluates in place of this one, or null if it evaluates this one itself
+	 */
+	@Nullable
+	private transient Filter evaluatedBy;
+
+	/**
+	 * Everything that decides which entities a filter matches, and nothing else.<br>
+	 * Filters with equal keys match exactly the same entities, so they only need to be evaluated once.
+	 */
+	public record MatchKey(
+			@Nullable EntityType type,
+			@Nullable String name,
+			int nameFlags,
+			@Nullable String customName,
+			int customNameFlags,
+			@Nullable UUID uuid,
+			@Nullable CreatureSpawnEvent.SpawnReason spawnReason,
+			@Nullable Class<?> instanceOf,
+			@Nullable Float minX,
+			@Nullable Float maxX,
+			@Nullable Float minZ,
+			@Nullable Float maxZ,
+			@Nullable Float minY,
+			@Nullable Float maxY,
+			@Nullable Set<String> scoreboardTags,
+			@Nullable List<MatchKey> exclude
+	) {
+	}
+
+	/**
+	 * @param webRoot The root of the BlueMap webapp, to check if the icon exists. If null, the icon is not checked.
+	 */
+	public boolean checkValidAndInit(Logger logger, @Nullable Path webRoot) {
 		boolean valid = true;
 
 		if (type != null) {
@@ -174,7 +219,7 @@ public class Filter {
 			if (icon.isBlank()) {
 				logger.log(Level.SEVERE, "Icon defined, but empty");
 				valid = false;
-			} else if (!Files.exists(bmApi.getWebApp().getWebRoot().resolve("assets/bmfe-icons").resolve(icon))) {
+			} else if (webRoot != null && !Files.exists(webRoot.resolve("assets/bmfe-icons").resolve(icon))) {
 				logger.log(Level.SEVERE, "Icon file does not exist: " + icon);
 				valid = false;
 			}
@@ -215,7 +260,7 @@ public class Filter {
 
 		if (exclude != null) {
 			for (Filter filter : exclude) {
-				if (!filter.checkValidAndInit(logger, bmApi)) {
+				if (!filter.checkValidAndInit(logger, webRoot)) {
 					valid = false;
 				}
 			}
@@ -240,6 +285,8 @@ public class Filter {
 			valid = false;
 		}
 
+		compilePredicates();
+
 		return valid;
 	}
 
@@ -262,36 +309,178 @@ public class Filter {
 		return maxDistance;
 	}
 
+	private void compilePredicates() {
+		List<FilterPredicate> compiled = new ArrayList<>();
+
+		// Cheap checks first. These are only the initial order; it gets adjusted at runtime by reorderPredicates()
+		if (entityType != null) {
+			compiled.add(new FilterPredicate("type", COST_CHEAP, false, e -> e.type() == entityType));
+		}
+		if (entityUUID != null) {
+			compiled.add(new FilterPredicate("uuid", COST_CHEAP, false, e -> e.uuid().equals(entityUUID)));
+		}
+		if (entitySpawnReason != null) {
+			compiled.add(new FilterPredicate("spawn-reason", COST_CHEAP, false, e -> e.spawnReason() == entitySpawnReason));
+		}
+		if (entityInstanceOf != null) {
+			compiled.add(new FilterPredicate("instance-of", COST_CHEAP, false, e -> entityInstanceOf.isAssignableFrom(e.entityClass())));
+		}
+		if (minX != null || maxX != null || minZ != null || maxZ != null || minY != null || maxY != null) {
+			compiled.add(new FilterPredicate("bounds", COST_BOUNDS, false, this::withinBounds));
+		}
+		if (scoreboardTags != null) {
+			compiled.add(new FilterPredicate("scoreboard-tags", COST_SCOREBOARD_TAGS, false, e -> e.scoreboardTags().containsAll(scoreboardTags)));
+		}
+		if (name != null) {
+			compiled.add(new FilterPredicate("name", COST_REGEX, false, e -> name.matcher(e.name()).find()));
+		}
+		if (customName != null) {
+			compiled.add(new FilterPredicate("custom-name", COST_REGEX, false, e -> {
+				@Nullable String entityCustomName = e.customName();
+				return entityCustomName != null && customName.matcher(entityCustomName).find();
+			}));
+		}
+
+		// Exclusions only need to be checked for entities that would otherwise have been matched
+		if (exclude != null && !exclude.isEmpty()) {
+			compiled.add(new FilterPredicate("exclude", COST_EXCLUDE, true, e -> {
+				for (Filter excludingFilter : exclude) {
+					if (excludingFilter.matches(e)) {
+						return false;
+					}
+				}
+				return true;
+			}));
+		}
+
+		predicates = compiled.toArray(new FilterPredicate[0]);
+
+		EntitySnapshot.Fields fields = new EntitySnapshot.Fields(name != null, customName != null, scoreboardTags != null);
+		if (exclude != null) {
+			// Exclusions never show a popup, so only their conditions count
+			for (Filter excludingFilter : exclude) {
+				fields = fields.union(excludingFilter.getConditionFields());
+			}
+		}
+		conditionFields = fields;
+
+		String template = popupInfoTemplate == null ? "" : popupInfoTemplate;
+		requiredFields = conditionFields.union(new EntitySnapshot.Fields(
+				template.contains(ENTITY_PROPERTY_NAME),
+				template.contains(ENTITY_PROPERTY_CUSTOM_NAME),
+				template.contains(ENTITY_PROPERTY_SCOREBOARD_TAGS)
+		));
+
+		matchKey = new MatchKey(
+				entityType,
+				name == null ? null : name.pattern(), name == null ? 0 : name.flags(),
+				customName == null ? null : customName.pattern(), customName == null ? 0 : customName.flags(),
+				entityUUID,
+				entitySpawnReason,
+				entityInstanceOf,
+				minX, maxX, minZ, maxZ, minY, maxY,
+				scoreboardTags == null ? null : Set.copyOf(scoreboardTags),
+				exclude == null ? null : exclude.stream().map(Filter::getMatchKey).toList()
+		);
+	}
+
+	/**
+	 * @return The optional entity fields that the conditions of this filter and its exclusions read
+	 */
+	public EntitySnapshot.@NotNull Fields getConditionFields() {
+		return conditionFields;
+	}
+
+	/**
+	 * @return The optional entity fields that this filter or its popup template reads
+	 */
+	public EntitySnapshot.@NotNull Fields getRequiredFields() {
+		return requiredFields;
+	}
+
+	/**
+	 * Only available after {@link #checkValidAndInit}
+	 */
+	public @NotNull MatchKey getMatchKey() {
+		return Objects.requireNonNull(matchKey, "Filter has not been initialised");
+	}
+
 	@SuppressWarnings("RedundantIfStatement")
-	public boolean matches(Entity e) {
+	private boolean withinBounds(EntitySnapshot e) {
+		if (minX != null && e.x() < minX) return false;
+		if (maxX != null && e.x() > maxX) return false;
+		if (minZ != null && e.z() < minZ) return false;
+		if (maxZ != null && e.z() > maxZ) return false;
+		if (minY != null && e.y() < minY) return false;
+		if (maxY != null && e.y() > maxY) return false;
+		return true;
+	}
+
+	/**
+	 * Sorts the conditions of this filter (and its exclusions) by their observed rejection rate and cost,
+	 * so that the ones that are most likely to reject an entity cheaply are checked first.<br>
+	 * Afterwards, the counters are halved, so the next sort mostly reflects what was observed with this order.
+	 */
+	public void reorderPredicates() {
+		FilterPredicate[] sorted = predicates.clone();
+		for (FilterPredicate predicate : sorted) {
+			predicate.captureScore();
+		}
+		Arrays.sort(sorted, FilterPredicate.BY_EFFECTIVENESS);
+		predicates = sorted;
+		for (FilterPredicate predicate : sorted) {
+			predicate.decayStats();
+		}
+
 		if (exclude != null) {
 			for (Filter excludingFilter : exclude) {
-				if (excludingFilter.matches(e)) {
-					return false;
-				}
+				excludingFilter.reorderPredicates();
 			}
 		}
+	}
 
-		if (entityType != null && e.getType() != entityType) return false;
-		if (name != null && !name.matcher(e.getName()).find()) return false;
-		if (customName != null) {
-			@Nullable String entityCustomName = getCustomName(e);
-			if (entityCustomName == null || !customName.matcher(entityCustomName).find())
-				return false;
+	public void resetPredicateStats() {
+		for (FilterPredicate predicate : predicates) {
+			predicate.resetStats();
 		}
-		if (entityUUID != null && !e.getUniqueId().equals(entityUUID)) return false;
-		if (entitySpawnReason != null && e.getEntitySpawnReason() != entitySpawnReason) return false;
-		if (entityInstanceOf != null && !entityInstanceOf.isInstance(e)) return false;
 
-		if (minX != null && e.getLocation().getX() < minX) return false;
-		if (maxX != null && e.getLocation().getX() > maxX) return false;
-		if (minZ != null && e.getLocation().getZ() < minZ) return false;
-		if (maxZ != null && e.getLocation().getZ() > maxZ) return false;
-		if (minY != null && e.getLocation().getY() < minY) return false;
-		if (maxY != null && e.getLocation().getY() > maxY) return false;
+		if (exclude != null) {
+			for (Filter excludingFilter : exclude) {
+				excludingFilter.resetPredicateStats();
+			}
+		}
+	}
 
-		if (scoreboardTags != null && !e.getScoreboardTags().containsAll(scoreboardTags)) return false;
+	/**
+	 * @param lines  List to add the stats of this filter's conditions to, in their current evaluation order
+	 * @param indent Prefix for every line
+	 */
+	public void appendPredicateStats(List<String> lines, String indent) {
+		if (evaluatedBy != null) {
+			lines.add(indent + "shared with an identical filter, which is evaluated instead; see its stats");
+			return;
+		}
+
+		for (FilterPredicate predicate : predicates) {
+			lines.add(indent + predicate);
+		}
 
+		if (exclude != null) {
+			for (int i = 0; i < exclude.size(); i++) {
+				lines.add(indent + "exclude[" + i + "]:");
+				exclude.get(i).appendPredicateStats(lines, indent + "  ");
+			}
+		}
+	}
+
+	void setEvaluatedBy(@Nullable Filter evaluatedBy) {
+		this.evaluatedBy = evaluatedBy;
+	}
+
+	public boolean matches(EntitySnapshot e) {
+		for (FilterPredicate predicate : predicates) {
+			if (!predicate.test(e)) return false;
+		}
 		return true;
 	}
 }
@@ -0,0 +1,96 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the entities of a world through the filter sets of all maps of that world in one pass.
+ * <p>
+ * Filters that are defined the same way (see {@link Filter.MatchKey}) are only evaluated once per entity,
+ * even if they appear in multiple filter sets or maps.
+ * Each filter set still gets the first of its own filters that matched, so the appearance options of that filter are used.
+ * The stats of the other filters stay empty, so they are marked as shared with the one that is evaluated instead.
+ */
+public class FilterClassifier {
+	/**
+	 * An entity, and the filter of a filter set that matched it first
+	 */
+	public record Match(@NotNull EntitySnapshot entity, @NotNull Filter filter) {
+	}
+
+	private static final byte UNKNOWN = 0;
+	private static final byte MATCHED = 1;
+	private static final byte NOT_MATCHED = 2;
+
+	/**
+	 * One filter for each distinct {@link Filter.MatchKey}
+	 */
+	private final Filter[] uniqueFilters;
+	private final Map<FilterSet, int[]> uniqueIndicesPerFilterSet = new IdentityHashMap<>();
+
+	public FilterClassifier(@NotNull Collection<FilterSet> filterSets) {
+		Map<Filter.MatchKey, Integer> indexByKey = new HashMap<>();
+		List<Filter> unique = new ArrayList<>();
+		for (FilterSet filterSet : filterSets) {
+			List<Filter> filters = filterSet.getFilters();
+			assert filters != null;
+
+			int[] indices = new int[filters.size()];
+			for (int i = 0; i < filters.size(); i++) {
+				Filter filter = filters.get(i);
+				indices[i] = indexByKey.computeIfAbsent(filter.getMatchKey(), key -> {
+					unique.add(filter);
+					return unique.size() - 1;
+				});
+				Filter evaluatedBy = unique.get(indices[i]);
+				filter.setEvaluatedBy(evaluatedBy != filter ? evaluatedBy : null);
+			}
+			uniqueIndicesPerFilterSet.put(filterSet, indices);
+		}
+		uniqueFilters = unique.toArray(new Filter[0]);
+	}
+
+	public int getUniqueFilterCount() {
+		return uniqueFilters.length;
+	}
+
+	/**
+	 * @return For each filter set, the entities that it matched, in order
+	 */
+	public @NotNull Map<FilterSet, List<Match>> classify(@NotNull List<EntitySnapshot> entities) {
+		Map<FilterSet, List<Match>> matchesPerFilterSet = new IdentityHashMap<>();
+		for (FilterSet filterSet : uniqueIndicesPerFilterSet.keySet()) {
+			matchesPerFilterSet.put(filterSet, new ArrayList<>());
+		}
+
+		byte[] results = new byte[uniqueFilters.length];
+		for (EntitySnapshot entity : entities) {
+			Arrays.fill(results, UNKNOWN);
+
+			for (var entry : uniqueIndicesPerFilterSet.entrySet()) {
+				FilterSet filterSet = entry.getKey();
+				int[] indices = entry.getValue();
+
+				for (int i = 0; i < indices.length; i++) {
+					int index = indices[i];
+					if (results[index] == UNKNOWN) {
+						results[index] = uniqueFilters[index].matches(entity) ? MATCHED : NOT_MATCHED;
+					}
+					if (results[index] == MATCHED) {
+						assert filterSet.getFilters() != null;
+						matchesPerFilterSet.get(filterSet).add(new Match(entity, filterSet.getFilters().get(i)));
+						break;
+					}
+				}
+			}
+		}
+		return matchesPerFilterSet;
+	}
+}
@@ -0,0 +1,121 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * A single condition of a {@link Filter}, with counters for how often it was evaluated and how often it rejected an entity.
+ * <p>
+ * These counters are used to sort the conditions of a filter, so that the ones that reject the most entities
+ * for the least amount of work get evaluated first.
+ * To keep the counting cheaper than the cheapest conditions, only about one in {@value #SAMPLE_RATE} entities is counted,
+ * picked by their UUID.
+ * The counters are halved every time the conditions are sorted, so the order keeps following recent rejection rates.
+ */
+public class FilterPredicate {
+	public static final int SAMPLE_RATE = 8;
+	private static final long SAMPLE_MASK = SAMPLE_RATE - 1;
+
+	/**
+	 * Orders predicates by how many entities they are expected to reject per unit of work, best first.
+	 * Pinned predicates always go last. {@link #captureScore()} must be called on all of them first.
+	 */
+	public static final Comparator<FilterPredicate> BY_EFFECTIVENESS = Comparator
+			.comparing(FilterPredicate::isPinnedLast)
+			.thenComparing(Comparator.comparingDouble((FilterPredicate predicate) -> predicate.capturedScore).reversed());
+
+	private final @NotNull String name;
+	private final int cost;
+	private final boolean pinnedLast;
+	private final @NotNull Predicate<EntitySnapshot> predicate;
+
+	private final AtomicLong evaluations = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	/**
+	 * The score at the start of sorting, as the counters may change while the sort is running
+	 */
+	private double capturedScore;
+
+	/**
+	 * @param name       Name of the condition, as shown in the stats
+	 * @param cost       Rough relative cost of evaluating this condition
+	 * @param pinnedLast Whether this condition must always be evaluated after all others
+	 * @param predicate  The condition itself; should return true if the entity passes
+	 */
+	public FilterPredicate(@NotNull String name, int cost, boolean pinnedLast, @NotNull Predicate<EntitySnapshot> predicate) {
+		this.name = name;
+		this.cost = cost;
+		this.pinnedLast = pinnedLast;
+		this.predicate = predicate;
+	}
+
+	public boolean test(EntitySnapshot e) {
+		boolean passed = predicate.test(e);
+		if ((e.uuid().getLeastSignificantBits() & SAMPLE_MASK) == 0) {
+			evaluations.incrementAndGet();
+			if (!passed) rejections.incrementAndGet();
+		}
+		return passed;
+	}
+
+	public @NotNull String getName() {
+		return name;
+	}
+
+	public int getCost() {
+		return cost;
+	}
+
+	public boolean isPinnedLast() {
+		return pinnedLast;
+	}
+
+	public long getEvaluations() {
+		return evaluations.get();
+	}
+
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	/**
+	 * @return The rejection rate, smoothed so that predicates that have not been evaluated yet are assumed to reject half the time
+	 */
+	public double getRejectionRate() {
+		return (getRejections() + 1.0) / (getEvaluations() + 2.0);
+	}
+
+	/**
+	 * @return Expected rejections per unit of cost
+	 */
+	public double getScore() {
+		return getRejectionRate() / cost;
+	}
+
+	public void captureScore() {
+		capturedScore = getScore();
+	}
+
+	/**
+	 * Halves the counters, so older observations weigh less than newer ones
+	 */
+	public void decayStats() {
+		evaluations.updateAndGet(v -> v / 2);
+		rejections.updateAndGet(v -> v / 2);
+	}
+
+	public void resetStats() {
+		evaluations.set(0);
+		rejections.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (cost %d): %d/%d rejected (%.1f%%)",
+				name, cost, getRejections(), getEvaluations(), getEvaluations() == 0 ? 0.0 : 100.0 * getRejections() / getEvaluations());
+	}
+}
@@ -1,11 +1,12 @@
 package com.technicjelle.bluemapfilteredentities;
 
-import de.bluecolored.bluemap.api.BlueMapAPI;
 import de.bluecolored.bluemap.api.markers.MarkerSet;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.spongepowered.configurate.objectmapping.ConfigSerializable;
 import org.spongepowered.configurate.objectmapping.meta.Comment;
 
+import java.nio.file.Path;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -23,7 +24,7 @@ public class FilterSet {
 	@Comment("List of filters to apply")
 	private @Nullable List<Filter> filters;
 
-	public boolean checkValidAndInit(Logger logger, BlueMapAPI bmApi) {
+	public boolean checkValidAndInit(Logger logger, @Nullable Path webRoot) {
 		boolean valid = true;
 		if (label == null) {
 			logger.warning("Label is missing!");
@@ -45,7 +46,7 @@ public class FilterSet {
 			valid = false;
 		} else {
 			for (Filter filter : filters) {
-				if (!filter.checkValidAndInit(logger, bmApi)) {
+				if (!filter.checkValidAndInit(logger, webRoot)) {
 					valid = false;
 				}
 			}
@@ -58,6 +59,37 @@ public class FilterSet {
 		return filters;
 	}
 
+	public EntitySnapshot.@NotNull Fields getRequiredFields() {
+		EntitySnapshot.Fields fields = EntitySnapshot.Fields.NONE;
+		if (filters == null) return fields;
+		for (Filter filter : filters) {
+			fields = fields.union(filter.getRequiredFields());
+		}
+		return fields;
+	}
+
+	public void reorderPredicates() {
+		if (filters == null) return;
+		for (Filter filter : filters) {
+			filter.reorderPredicates();
+		}
+	}
+
+	public void resetPredicateStats() {
+		if (filters == null) return;
+		for (Filter filter : filters) {
+			filter.resetPredicateStats();
+		}
+	}
+
+	public void appendPredicateStats(List<String> lines, String indent) {
+		if (filters == null) return;
+		for (int i = 0; i < filters.size(); i++) {
+			lines.add(indent + "filters[" + i + "]:");
+			filters.get(i).appendPredicateStats(lines, indent + "  ");
+		}
+	}
+
 	public MarkerSet createMarkerset() {
 		return MarkerSet.builder()
 				.label(label)
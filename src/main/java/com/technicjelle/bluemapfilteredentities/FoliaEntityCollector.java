@@ -0,0 +1,231 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Collects entities on region-threaded (Folia) servers.
+ * <p>
+ * There, entities may only be accessed from the thread of the region that owns them, so a world can't be scanned in one go.
+ * Instead, the loaded chunks of the world are kept track of, and grouped by the region sections they are in.
+ * A region section always belongs to exactly one region, so each section gets one task on the thread of its region,
+ * which snapshots the entities of its loaded chunks.
+ * Those run in parallel across the server's regions, and the results are merged afterwards.
+ * <p>
+ * The plugin is compiled against the regular Paper API, so the region schedulers are called through reflection.
+ */
+public class FoliaEntityCollector implements EntityCollector, Listener {
+	/**
+	 * Folia's default, used if the actual value can't be read
+	 */
+	private static final int DEFAULT_REGION_CHUNK_SHIFT = 4;
+
+	/**
+	 * If a section's task hasn't run by then (for example, because the region was unloaded in the meantime),
+	 * the collection fails with a {@link TimeoutException}, so the previous markers of that world are kept instead of being cleared
+	 */
+	private static final long SECTION_TIMEOUT_SECONDS = 5;
+
+	private final @NotNull Plugin plugin;
+
+	private final Method getGlobalRegionScheduler;
+	private final Method globalRunAtFixedRate;
+	private final Method globalCancelTasks;
+	private final Method getRegionScheduler;
+	private final Method regionExecute;
+	private final int regionChunkShift;
+
+	/**
+	 * The loaded chunks of each world, by world UUID, as {@link #chunkKey} values
+	 */
+	private final Map<UUID, Set<Long>> loadedChunks = new ConcurrentHashMap<>();
+
+	private final AtomicBoolean warnedLoadedChunks = new AtomicBoolean();
+
+	public FoliaEntityCollector(@NotNull Plugin plugin) {
+		this.plugin = plugin;
+
+		try {
+			Class<?> globalRegionSchedulerClass = Class.forName("io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler");
+			Class<?> regionSchedulerClass = Class.forName("io.papermc.paper.threadedregions.scheduler.RegionScheduler");
+
+			getGlobalRegionScheduler = Bukkit.class.getMethod("getGlobalRegionScheduler");
+			globalRunAtFixedRate = globalRegionSchedulerClass.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class);
+			globalCancelTasks = globalRegionSchedulerClass.getMethod("cancelTasks", Plugin.class);
+			getRegionScheduler = Bukkit.class.getMethod("getRegionScheduler");
+			regionExecute = regionSchedulerClass.getMethod("execute", Plugin.class, World.class, int.class, int.class, Runnable.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			throw new IllegalStateException("Region-threaded server detected, but its scheduler API could not be found", e);
+		}
+
+		int shift;
+		try {
+			shift = (int) Class.forName("io.papermc.paper.threadedregions.TickRegions").getMethod("getRegionChunkShift").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			shift = DEFAULT_REGION_CHUNK_SHIFT;
+		}
+		regionChunkShift = shift;
+	}
+
+	@Override
+	public void scheduleRepeating(@NotNull Runnable task, long periodTicks) {
+		Consumer<Object> scheduledTask = ignored -> task.run();
+		// Folia does not allow an initial delay of 0
+		invoke(globalRunAtFixedRate, invoke(getGlobalRegionScheduler, null), plugin, scheduledTask, 1L, periodTicks);
+	}
+
+	@Override
+	public void cancelAll() {
+		invoke(globalCancelTasks, invoke(getGlobalRegionScheduler, null), plugin);
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(ChunkLoadEvent event) {
+		Chunk chunk = event.getChunk();
+		chunksOf(event.getWorld()).add(chunkKey(chunk.getX(), chunk.getZ()));
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkUnload(ChunkUnloadEvent event) {
+		Chunk chunk = event.getChunk();
+		chunksOf(event.getWorld()).remove(chunkKey(chunk.getX(), chunk.getZ()));
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldUnload(WorldUnloadEvent event) {
+		loadedChunks.remove(event.getWorld().getUID());
+	}
+
+	private Set<Long> chunksOf(World world) {
+		return loadedChunks.computeIfAbsent(world.getUID(), uid -> {
+			Set<Long> chunks = ConcurrentHashMap.newKeySet();
+			// Catch up on the chunks that were loaded before this plugin was, if the server allows it from this thread
+			try {
+				for (Chunk chunk : world.getLoadedChunks()) {
+					chunks.add(chunkKey(chunk.getX(), chunk.getZ()));
+				}
+			} catch (RuntimeException e) {
+				if (warnedLoadedChunks.compareAndSet(false, true)) {
+					plugin.getLogger().log(Level.WARNING, "Could not get the chunks that were already loaded in world " + world.getName() + ".\n" +
+							"Entities in those chunks won't get markers until the chunks are loaded again.", e);
+				}
+			}
+			return chunks;
+		});
+	}
+
+	@Override
+	public @NotNull CompletableFuture<List<EntitySnapshot>> collect(@NotNull World world, EntitySnapshot.@NotNull Fields fields) {
+		String worldName = world.getName();
+
+		// Group the loaded chunks by region section
+		Map<Long, List<Long>> chunksPerSection = new HashMap<>();
+		for (long key : chunksOf(world)) {
+			long sectionKey = chunkKey(chunkX(key) >> regionChunkShift, chunkZ(key) >> regionChunkShift);
+			chunksPerSection.computeIfAbsent(sectionKey, k -> new ArrayList<>()).add(key);
+		}
+
+		Object regionScheduler = invoke(getRegionScheduler, null);
+		List<CompletableFuture<List<EntitySnapshot>>> futures = new ArrayList<>(chunksPerSection.size());
+		for (List<Long> sectionChunks : chunksPerSection.values()) {
+			CompletableFuture<List<EntitySnapshot>> future = new CompletableFuture<>();
+			Runnable regionTask = () -> {
+				try {
+					List<EntitySnapshot> snapshots = new ArrayList<>();
+					for (long key : sectionChunks) {
+						int chunkX = chunkX(key);
+						int chunkZ = chunkZ(key);
+						if (!world.isChunkLoaded(chunkX, chunkZ)) continue;
+						for (Entity entity : world.getChunkAt(chunkX, chunkZ).getEntities()) {
+							if (entity instanceof Player) continue;
+							snapshots.add(EntitySnapshot.of(entity, worldName, fields));
+						}
+					}
+					future.complete(snapshots);
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			};
+
+			long firstChunk = sectionChunks.get(0);
+			invoke(regionExecute, regionScheduler, plugin, world, chunkX(firstChunk), chunkZ(firstChunk), regionTask);
+			futures.add(future.orTimeout(SECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+
+		// Waits for all sections, even if some of them failed
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((ignored, ignoredFailure) -> {
+			// An entity that moved into another section between two tasks could have been seen twice
+			Map<UUID, EntitySnapshot> merged = new LinkedHashMap<>();
+			int timedOut = 0;
+			for (CompletableFuture<List<EntitySnapshot>> future : futures) {
+				try {
+					for (EntitySnapshot snapshot : future.join()) {
+						merged.putIfAbsent(snapshot.uuid(), snapshot);
+					}
+				} catch (CompletionException sectionException) {
+					if (!(sectionException.getCause() instanceof TimeoutException)) throw sectionException;
+					timedOut++;
+				}
+			}
+
+			if (timedOut > 0) {
+				// A partial list would clear the markers of the missing sections, so rather not update this world at all
+				throw new CompletionException(new TimeoutException(timedOut + " of " + futures.size() + " region sections in world " + worldName +
+						" did not run within " + SECTION_TIMEOUT_SECONDS + "s, keeping the previous markers"));
+			}
+			return new ArrayList<>(merged.values());
+		});
+	}
+
+	private static long chunkKey(int chunkX, int chunkZ) {
+		return ((long) chunkZ << 32) | (chunkX & 0xFFFFFFFFL);
+	}
+
+	private static int chunkX(long key) {
+		return (int) key;
+	}
+
+	private static int chunkZ(long key) {
+		return (int) (key >> 32);
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not access " + method, e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+			throw new IllegalStateException("Failed to call " + method, e.getCause());
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the marker ids of entities around between updates, so they don't have to be built again for every entity every time.
+ * <p>
+ * Ids that were not used during the last whole update are evicted, so entities that are gone don't stay in here forever.<br>
+ * Not thread-safe: each {@link TrackedWorld} has its own, which is only used by one update at a time.
+ */
+public class MarkerIdCache {
+	private static final class Entry {
+		private final @NotNull String id;
+		private long lastSeenCycle;
+
+		private Entry(@NotNull String id) {
+			this.id = id;
+		}
+	}
+
+	private final Map<UUID, Entry> entries = new HashMap<>();
+	private long cycle = 0;
+
+	public @NotNull String get(@NotNull UUID uuid) {
+		Entry entry = entries.get(uuid);
+		if (entry == null) {
+			entry = new Entry("bmfe." + uuid);
+			entries.put(uuid, entry);
+		}
+		entry.lastSeenCycle = cycle;
+		return entry.id;
+	}
+
+	/**
+	 * Must be called after every update
+	 */
+	public void nextCycle() {
+		long finishedCycle = cycle;
+		entries.values().removeIf(entry -> entry.lastSeenCycle < finishedCycle);
+		cycle++;
+	}
+}
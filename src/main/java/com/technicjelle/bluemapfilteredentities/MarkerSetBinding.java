@@ -0,0 +1,40 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * A filter set of a map, with the id of its marker set worked out once when the config is loaded.
+ */
+public class MarkerSetBinding {
+	private final @NotNull String filterSetId;
+	private final @NotNull FilterSet filterSet;
+	private final @NotNull String markerSetId;
+
+	public MarkerSetBinding(@NotNull String mapId, @NotNull String filterSetId, @NotNull FilterSet filterSet) {
+		this.filterSetId = filterSetId;
+		this.filterSet = filterSet;
+		this.markerSetId = EntityMarkers.markerSetId(mapId, filterSetId);
+	}
+
+	public @NotNull String getFilterSetId() {
+		return filterSetId;
+	}
+
+	public @NotNull FilterSet getFilterSet() {
+		return filterSet;
+	}
+
+	public @NotNull String getMarkerSetId() {
+		return markerSetId;
+	}
+
+	/**
+	 * @param markerSets The marker sets of the map, in which the marker set is created if it is missing
+	 */
+	public @NotNull MarkerSet resolve(@NotNull Map<String, MarkerSet> markerSets) {
+		return markerSets.computeIfAbsent(markerSetId, id -> filterSet.createMarkerset());
+	}
+}
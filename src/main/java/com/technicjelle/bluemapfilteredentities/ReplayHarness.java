@@ -0,0 +1,181 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+import org.spongepowered.configurate.CommentedConfigurationNode;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static com.technicjelle.bluemapfilteredentities.Constants.CONF_EXT;
+
+/**
+ * Replays an {@link EntityRecording} through the config loading, filtering and marker building of this plugin, without a server.
+ * <p>
+ * Usage: {@code ReplayHarness <recording> <config-folder> [iterations]}<br>
+ * The config folder should contain the {@code <map-id>.conf} files to test, just like the plugin's own folder.
+ * Just like in the plugin, all maps of a world share one classification pass per cycle.
+ * The marker sets are kept in memory, in place of BlueMap's.
+ * <p>
+ * Reports the throughput and the latency per world per cycle, and whether the resulting markers are
+ * the same as the ones the plugin made when the recording was made.
+ * The first iteration is used as warmup when there is more than one.
+ */
+public class ReplayHarness {
+	/**
+	 * Stand-in for a {@link TrackedWorld}
+	 */
+	private static class ReplayWorld {
+		final Map<String, List<MarkerSetBinding>> bindingsPerMap = new LinkedHashMap<>();
+		final List<FilterSet> filterSets = new ArrayList<>();
+		FilterClassifier classifier;
+
+		// Stand-in for BlueMap's per-map marker sets, reset every iteration
+		Map<String, Map<String, MarkerSet>> markerSetsPerMap = new HashMap<>();
+		MarkerIdCache markerIds = new MarkerIdCache();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplayHarness <recording" + EntityRecording.FILE_EXT + "> <config-folder> [iterations]");
+			System.exit(1);
+		}
+		Path recordingPath = Path.of(args[0]);
+		Path configFolder = Path.of(args[1]);
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		Logger logger = Logger.getLogger(ReplayHarness.class.getName());
+
+		List<EntityRecording.Frame> frames = EntityRecording.read(recordingPath);
+		System.out.println("Read " + frames.size() + " frames from " + recordingPath);
+
+		// Each map's config is only loaded once, even if the world's set of maps changed during the recording
+		Map<String, Map<String, FilterSet>> filterSetsPerMap = new HashMap<>();
+		Map<String, ReplayWorld> worlds = new HashMap<>();
+		for (EntityRecording.Frame frame : frames) {
+			String worldKey = worldKey(frame);
+			if (worlds.containsKey(worldKey)) continue;
+
+			ReplayWorld world = new ReplayWorld();
+			for (String mapId : frame.mapIds()) {
+				Map<String, FilterSet> filterSetMap = filterSetsPerMap.get(mapId);
+				if (filterSetMap == null) {
+					filterSetMap = loadConfig(configFolder, mapId, logger);
+					filterSetsPerMap.put(mapId, filterSetMap);
+				}
+
+				List<MarkerSetBinding> bindings = new ArrayList<>();
+				for (var entry : filterSetMap.entrySet()) {
+					bindings.add(new MarkerSetBinding(mapId, entry.getKey(), entry.getValue()));
+				}
+				world.bindingsPerMap.put(mapId, bindings);
+				world.filterSets.addAll(filterSetMap.values());
+			}
+			world.classifier = new FilterClassifier(world.filterSets);
+			worlds.put(worldKey, world);
+		}
+
+		int measuredIterations = iterations > 1 ? iterations - 1 : 1;
+		long[] latencies = new long[frames.size() * measuredIterations];
+		int latencyCount = 0;
+		long measuredEntities = 0;
+		long measuredNanos = 0;
+		int matchingFrames = 0;
+		int comparedFrames = 0;
+
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			boolean warmup = iterations > 1 && iteration == 0;
+			boolean lastIteration = iteration == iterations - 1;
+
+			for (ReplayWorld world : worlds.values()) {
+				world.markerSetsPerMap = new HashMap<>();
+				world.markerIds = new MarkerIdCache();
+			}
+
+			for (EntityRecording.Frame frame : frames) {
+				ReplayWorld world = worlds.get(worldKey(frame));
+				if (world.filterSets.isEmpty()) continue;
+
+				// Just like the plugin does at the start of every update
+				for (FilterSet filterSet : world.filterSets) {
+					filterSet.reorderPredicates();
+				}
+
+				long start = System.nanoTime();
+				Map<FilterSet, List<FilterClassifier.Match>> classification = world.classifier.classify(frame.entities());
+				for (var entry : world.bindingsPerMap.entrySet()) {
+					Map<String, MarkerSet> markerSets = world.markerSetsPerMap.computeIfAbsent(entry.getKey(), id -> new HashMap<>());
+					EntityMarkers.processEntities(markerSets, entry.getValue(), classification, world.markerIds);
+				}
+				world.markerIds.nextCycle();
+				long elapsed = System.nanoTime() - start;
+
+				if (!warmup) {
+					latencies[latencyCount++] = elapsed;
+					measuredNanos += elapsed;
+					measuredEntities += frame.entities().size();
+				}
+
+				if (lastIteration) {
+					comparedFrames++;
+					if (markersMatch(frame, world)) {
+						matchingFrames++;
+					} else {
+						System.out.println("Output differs from recording for world " + frame.worldName() + " at " + frame.timestamp());
+					}
+				}
+			}
+		}
+
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		System.out.println("Iterations: " + iterations + (iterations > 1 ? " (first one was warmup)" : ""));
+		System.out.printf("Throughput: %.0f entities/s%n", measuredNanos == 0 ? 0.0 : measuredEntities * 1e9 / measuredNanos);
+		System.out.printf("Latency per world per cycle: p50 %.3fms, p90 %.3fms, p99 %.3fms, max %.3fms%n",
+				percentileMillis(sorted, 0.50), percentileMillis(sorted, 0.90), percentileMillis(sorted, 0.99), percentileMillis(sorted, 1.0));
+		System.out.println("Output equal to recording: " + matchingFrames + "/" + comparedFrames + " frames");
+	}
+
+	private static String worldKey(EntityRecording.Frame frame) {
+		return frame.worldName() + frame.mapIds();
+	}
+
+	private static Map<String, FilterSet> loadConfig(Path configFolder, String mapId, Logger logger) throws Exception {
+		Path configPath = configFolder.resolve(mapId + CONF_EXT);
+		if (!Files.exists(configPath)) {
+			logger.warning("No config for map: " + mapId + ", skipping it");
+			return Map.of();
+		}
+
+		logger.info("Loading config for map: " + mapId);
+		CommentedConfigurationNode root = ConfigLoader.load(configPath);
+		// Icons are not checked, as there is no webapp
+		return ConfigLoader.loadFilterSets(root, logger, null);
+	}
+
+	private static boolean markersMatch(EntityRecording.Frame frame, ReplayWorld world) {
+		int markerSetCount = 0;
+		for (var entry : world.bindingsPerMap.entrySet()) {
+			Map<String, MarkerSet> markerSets = world.markerSetsPerMap.get(entry.getKey());
+			for (MarkerSetBinding binding : entry.getValue()) {
+				markerSetCount++;
+				Long recordedDigest = frame.markerSetDigests().get(binding.getMarkerSetId());
+				MarkerSet markerSet = markerSets.get(binding.getMarkerSetId());
+				if (recordedDigest == null || markerSet == null || EntityMarkers.digest(markerSet) != recordedDigest) return false;
+			}
+		}
+		return markerSetCount == frame.markerSetDigests().size();
+	}
+
+	private static double percentileMillis(long[] sorted, double percentile) {
+		if (sorted.length == 0) return 0.0;
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+}
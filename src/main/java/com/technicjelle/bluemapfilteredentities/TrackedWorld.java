@@ -0,0 +1,109 @@
+package com.technicjelle.bluemapfilteredentities;
+
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.BlueMapWorld;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * All the tracked maps of a single world, which share one entity snapshot and one {@link FilterClassifier} pass per update.
+ * <p>
+ * Everything that can be worked out when the config is loaded, is worked out here,
+ * so that the work per update doesn't grow with the number of maps and worlds.
+ */
+public class TrackedWorld {
+	private final @NotNull BlueMapWorld blueMapWorld;
+	private final @NotNull Map<BlueMapMap, List<MarkerSetBinding>> bindings = new HashMap<>();
+	private final @NotNull FilterClassifier classifier;
+	private final EntitySnapshot.@NotNull Fields requiredFields;
+	private final @NotNull MarkerIdCache markerIds = new MarkerIdCache();
+	private final AtomicBoolean updating = new AtomicBoolean(false);
+
+	private volatile @Nullable World world;
+	private volatile boolean worldResolved = false;
+
+	public TrackedWorld(@NotNull BlueMapWorld blueMapWorld, @NotNull Map<BlueMapMap, Map<String, FilterSet>> maps) {
+		this.blueMapWorld = blueMapWorld;
+		for (var entry : maps.entrySet()) {
+			BlueMapMap map = entry.getKey();
+			List<MarkerSetBinding> mapBindings = new ArrayList<>();
+			for (var filterSetEntry : entry.getValue().entrySet()) {
+				mapBindings.add(new MarkerSetBinding(map.getId(), filterSetEntry.getKey(), filterSetEntry.getValue()));
+			}
+			bindings.put(map, mapBindings);
+		}
+		List<FilterSet> filterSets = maps.values().stream().flatMap(filterSetMap -> filterSetMap.values().stream()).toList();
+		this.classifier = new FilterClassifier(filterSets);
+
+		EntitySnapshot.Fields fields = EntitySnapshot.Fields.NONE;
+		for (FilterSet filterSet : filterSets) {
+			fields = fields.union(filterSet.getRequiredFields());
+		}
+		this.requiredFields = fields;
+	}
+
+	public @NotNull BlueMapWorld getBlueMapWorld() {
+		return blueMapWorld;
+	}
+
+	public @NotNull Map<BlueMapMap, List<MarkerSetBinding>> getBindings() {
+		return bindings;
+	}
+
+	public @NotNull FilterClassifier getClassifier() {
+		return classifier;
+	}
+
+	/**
+	 * @return The optional entity fields that any of the filters or popup templates of this world read
+	 */
+	public EntitySnapshot.@NotNull Fields getRequiredFields() {
+		return requiredFields;
+	}
+
+	public @NotNull MarkerIdCache getMarkerIds() {
+		return markerIds;
+	}
+
+	public boolean isWorldResolved() {
+		return worldResolved;
+	}
+
+	/**
+	 * @return The Bukkit world, or null if it was resolved, but isn't loaded
+	 */
+	public @Nullable World getWorld() {
+		return world;
+	}
+
+	public void setWorld(@Nullable World world) {
+		this.world = world;
+		this.worldResolved = true;
+	}
+
+	/**
+	 * Makes the Bukkit world get looked up again on the next update, for when worlds are loaded or unloaded
+	 */
+	public void invalidateWorld() {
+		this.worldResolved = false;
+		this.world = null;
+	}
+
+	/**
+	 * @return false if the previous update of this world is still running
+	 */
+	public boolean tryStartUpdate() {
+		return updating.compareAndSet(false, true);
+	}
+
+	public void finishUpdate() {
+		updating.set(false);
+	}
+}